@@ -5,9 +5,17 @@ export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
 export PATH=$JAVA_HOME/bin:$PATH
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Messenger.java
+javac -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
 java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Messenger $DB_NAME $PGPORT $USER
 
+#to send reads to a replica (a second local postgres works too), e.g.
+#java -Dmessenger.replicas=localhost:5433/$DB_NAME -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Messenger $DB_NAME $PGPORT $USER
+
+#to shard chats over several databases, create and load each shard first, e.g. create_shard_db.sh 5433 shard0 2 0 and create_shard_db.sh 5434 shard1 2 1
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Messenger $DB_NAME $PGPORT $USER localhost:5433/shard0 localhost:5434/shard1
+
+#to keep removing deleted users and chats while no client runs (same arguments as Messenger)
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Reaper $DB_NAME $PGPORT $USER
@@ -0,0 +1,234 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.Random;
+
+/**
+ * Admission control in front of the expensive operations, shared by every
+ * client of the database. Each user gets a token bucket per operation,
+ * kept in the RATE_LIMIT table and taken with a single atomic statement,
+ * so one user sending in a tight loop is throttled whichever clients they
+ * use and across restarts. On top of that a global limit caps how many
+ * operations run on the database at once: a slot is one session advisory
+ * lock. A request first grabs any free slot in one statement; when all are
+ * busy it waits on a single slot, bounded by lock_timeout, and is shed if
+ * the wait runs out. So a request costs the primary at most a handful of
+ * round trips however long the queue. Slots held by a client that dies
+ * are freed with its connection.
+ *
+ * Every admitted operation costs the primary the slot lock and unlock plus
+ * one RATE_LIMIT upsert. With sharded chats that is one write on the
+ * primary for each CreateMessage, next to the message on its shard.
+ *
+ * Every client should be started with the same limits.
+ *
+ * Tunables (system properties):
+ *    messenger.limit.<operation>.rate   tokens added per second
+ *    messenger.limit.<operation>.burst  bucket size
+ *    messenger.limit.maxConcurrent      operations running at once (default 8)
+ *    messenger.limit.queueTimeoutMillis wait for a slot before shedding (default 500)
+ */
+public class AdmissionControl {
+
+   // operation name, default rate per second, default burst
+   static final Object[][] DEFAULT_LIMITS = {
+      { "CreateMessage", 5.0, 10 },
+      { "StartNewChat", 1.0, 3 },
+      { "LogIn", 0.2, 5 }
+   };
+
+   // first key of the slot advisory locks, the second one is the slot
+   static final int SLOT_LOCK = 166030;
+
+   // SQLSTATE of lock_not_available, raised when lock_timeout runs out
+   private static final String LOCK_NOT_AVAILABLE = "55P03";
+
+   private final Connection _connection;
+   private final Map<String, double[]> _limits = new HashMap<String, double[]>();
+   private final int _maxConcurrent;
+   private final long _queueTimeoutMillis;
+
+   // slot held by the running operation, -1 when none
+   private int _slot = -1;
+   // slot to wait on next when all are busy, spread over the slots
+   private int _nextSlot;
+
+   // metrics per operation
+   private final Map<String, long[]> _admitted = new TreeMap<String, long[]>();
+   private final Map<String, long[]> _throttled = new TreeMap<String, long[]>();
+   private final Map<String, long[]> _shed = new TreeMap<String, long[]>();
+
+   /**
+    * Creates the limiter from the system properties
+    *
+    * @param connection a connection to the primary database, holds the slots
+    */
+   public AdmissionControl (Connection connection) {
+      this._connection = connection;
+      for (Object[] limit : DEFAULT_LIMITS) {
+         String op = (String) limit[0];
+         double rate = Double.parseDouble(System.getProperty("messenger.limit." + op + ".rate", String.valueOf(limit[1])));
+         int burst = Integer.getInteger("messenger.limit." + op + ".burst", (Integer) limit[2]);
+         this._limits.put(op, new double[] { rate, burst });
+      }//end for
+      this._maxConcurrent = Math.max(1, Integer.getInteger("messenger.limit.maxConcurrent", 8));
+      this._queueTimeoutMillis = Long.getLong("messenger.limit.queueTimeoutMillis", 500L);
+      this._nextSlot = new Random().nextInt(this._maxConcurrent);
+   }//end AdmissionControl
+
+   /**
+    * Asks to run an operation for a user. The slot is taken before the
+    * token, so a shed request costs the user nothing. When this returns
+    * true the caller must call exit() once the operation is over.
+    *
+    * @param login the user the operation runs for
+    * @param op the operation name, e.g. CreateMessage
+    * @return true if the operation may run, false if it was throttled or shed
+    * @throws java.sql.SQLException when the limiter could not be queried
+    */
+   public boolean enter (String login, String op) throws SQLException {
+      int slot = takeSlot();
+      if (slot < 0) {
+         count(this._shed, op);
+         return false;
+      }//end if
+
+      boolean ok = false;
+      try {
+         ok = takeToken(login, op);
+      }finally {
+         if (!ok)
+            releaseSlot(slot);
+      }
+      if (!ok) {
+         count(this._throttled, op);
+         return false;
+      }//end if
+      this._slot = slot;
+      count(this._admitted, op);
+      return true;
+   }//end enter
+
+   /**
+    * Ends an operation that was let in by enter().
+    */
+   public void exit () {
+      int slot = this._slot;
+      this._slot = -1;
+      if (slot >= 0)
+         releaseSlot(slot);
+   }//end exit
+
+   /*
+    * Takes a free slot if there is one, else waits for one slot until the
+    * queue timeout is over
+    * @return the slot taken, -1 if none was free in time
+    **/
+   private int takeSlot () throws SQLException {
+      Statement stmt = this._connection.createStatement ();
+      try {
+         // stops at the first slot locked, so at most one is taken
+         ResultSet rs = stmt.executeQuery (String.format("SELECT s FROM generate_series(0, %d) s WHERE pg_try_advisory_lock(%d, s) LIMIT 1", this._maxConcurrent - 1, SLOT_LOCK));
+         if (rs.next())
+            return rs.getInt(1);
+         if (this._queueTimeoutMillis <= 0)
+            return -1;
+
+         int slot = this._nextSlot;
+         this._nextSlot = (this._nextSlot + 1) % this._maxConcurrent;
+         stmt.execute (String.format("SET lock_timeout = %d", this._queueTimeoutMillis));
+         try {
+            stmt.executeQuery (String.format("SELECT pg_advisory_lock(%d, %d)", SLOT_LOCK, slot));
+            return slot;
+         }catch (SQLException e){
+            if (LOCK_NOT_AVAILABLE.equals(e.getSQLState()) || String.valueOf(e.getMessage()).contains("lock timeout"))
+               return -1;
+            throw e;
+         }finally {
+            stmt.execute ("RESET lock_timeout");
+         }
+      }finally {
+         stmt.close ();
+      }
+   }//end takeSlot
+
+   private void releaseSlot (int slot) {
+      try {
+         queryBoolean(String.format("SELECT pg_advisory_unlock(%d, %d)", SLOT_LOCK, slot));
+      }catch (SQLException e){
+         System.err.println("Could not release admission slot " + slot + ": " + e.getMessage());
+      }
+   }//end releaseSlot
+
+   /*
+    * Refills the user's bucket and takes one token from it in one statement,
+    * the row is not changed when less than a token is left
+    **/
+   private boolean takeToken (String login, String op) throws SQLException {
+      double[] limit = this._limits.get(op);
+      if (limit == null)
+         return true;
+      String level = String.format("LEAST(%s, RATE_LIMIT.tokens + EXTRACT(EPOCH FROM (clock_timestamp() - RATE_LIMIT.refilled_at)) * %s)", limit[1], limit[0]);
+      String query = String.format(
+         "INSERT INTO RATE_LIMIT (login, operation, tokens, refilled_at) VALUES ('%s', '%s', %s, clock_timestamp()) " +
+         "ON CONFLICT (login, operation) DO UPDATE SET tokens = %s - 1, refilled_at = clock_timestamp() WHERE %s >= 1 " +
+         "RETURNING tokens", login.replace("'", "''"), op, limit[1] - 1, level, level);
+      Statement stmt = this._connection.createStatement ();
+      try {
+         ResultSet rs = stmt.executeQuery (query);
+         return rs.next();
+      }finally {
+         stmt.close ();
+      }
+   }//end takeToken
+
+   private boolean queryBoolean (String query) throws SQLException {
+      Statement stmt = this._connection.createStatement ();
+      try {
+         ResultSet rs = stmt.executeQuery (query);
+         return rs.next() && rs.getBoolean(1);
+      }finally {
+         stmt.close ();
+      }
+   }//end queryBoolean
+
+   private void count (Map<String, long[]> counters, String op) {
+      long[] c = counters.get(op);
+      if (c == null) {
+         c = new long[1];
+         counters.put(op, c);
+      }//end if
+      c[0]++;
+   }//end count
+
+   /**
+    * Prints the admission metrics of this client to standard out.
+    */
+   public void printStatus () {
+      System.out.println("ADMISSION CONTROL");
+      System.out.println("-----------------");
+      for (Map.Entry<String, long[]> e : this._admitted.entrySet())
+         System.out.println(e.getKey() + " admitted\t" + e.getValue()[0]);
+      for (Map.Entry<String, long[]> e : this._throttled.entrySet())
+         System.out.println(e.getKey() + " throttled\t" + e.getValue()[0]);
+      for (Map.Entry<String, long[]> e : this._shed.entrySet())
+         System.out.println(e.getKey() + " shed\t" + e.getValue()[0]);
+   }//end printStatus
+}//end AdmissionControl
@@ -0,0 +1,367 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * Chooses the connection a statement should run on. Writes always go to the
+ * primary; read-only queries are spread over the configured replicas and
+ * fall back to the primary when no replica is fresh enough, or when the
+ * same user wrote something a moment ago (read-your-writes).
+ *
+ * Replica lag is measured and dead replicas are reconnected by a
+ * background prober, never on a user's read. The prober compares what a
+ * replica has replayed with the current WAL position of the primary, read
+ * over its own primary connection, so a replica whose WAL receiver stopped
+ * is seen falling behind. A replica that cannot be reached is retried with
+ * exponential back-off.
+ *
+ * Tunables (system properties):
+ *    messenger.replicas              comma separated host:port/dbname list (default none)
+ *    messenger.replica.selection     roundrobin or leastloaded (default roundrobin)
+ *    messenger.replica.maxLagMillis  replicas further behind are skipped (default 1000)
+ *    messenger.replica.lagCheckMillis how often the lag is re-measured (default 1000)
+ *    messenger.replica.maxBackoffMillis longest wait before retrying a dead replica (default 60000)
+ *    messenger.replica.stickyMillis  reads stay on the primary this long after a write (default 5000)
+ */
+public class DataSourceRouter {
+
+   /**
+    * One replica endpoint and what we last learned about it
+    */
+   static class Replica {
+      final String url;
+      // used by reads, only ever replaced by the prober while idle
+      Connection connection = null;
+      // used by the prober only
+      Connection probe = null;
+      int inFlight = 0;
+      long lagMillis = 0;
+      long nextCheckAt = 0;
+      int failures = 0;
+      boolean healthy = false;
+      // a read failed on connection, the prober reopens it
+      boolean broken = false;
+      long reads = 0;
+
+      Replica (String url) {
+         this.url = url;
+      }
+   }//end Replica
+
+   private final Connection _primary;
+   private final String _primaryUrl;
+   // the prober's own connection to the primary, _primary is not shared
+   private Connection _probePrimary = null;
+   private final String _user;
+   private final String _passwd;
+   private final List<Replica> _replicas = new ArrayList<Replica>();
+   private final boolean _leastLoaded;
+   private final long _maxLagMillis;
+   private final long _lagCheckMillis;
+   private final long _maxBackoffMillis;
+   private final long _stickyMillis;
+   private Thread _prober = null;
+   private volatile boolean _running = false;
+
+   // last write time per user login
+   private final Map<String, Long> _lastWrite = new HashMap<String, Long>();
+   private int _next = 0;
+   private long _primaryReads = 0;
+   private long _lagFallbacks = 0;
+   private long _stickyFallbacks = 0;
+
+   /**
+    * Creates a router over an already open primary connection. Replica
+    * connections are opened by the prober with the same credentials.
+    *
+    * @param primary the connection used for all writes
+    * @param primaryUrl the JDBC URL of the primary, for the prober
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    */
+   public DataSourceRouter (Connection primary, String primaryUrl, String user, String passwd) {
+      this._primary = primary;
+      this._primaryUrl = primaryUrl;
+      this._user = user;
+      this._passwd = passwd;
+      this._leastLoaded = "leastloaded".equalsIgnoreCase(System.getProperty("messenger.replica.selection", "roundrobin"));
+      this._maxLagMillis = Long.getLong("messenger.replica.maxLagMillis", 1000L);
+      this._lagCheckMillis = Long.getLong("messenger.replica.lagCheckMillis", 1000L);
+      this._maxBackoffMillis = Long.getLong("messenger.replica.maxBackoffMillis", 60000L);
+      this._stickyMillis = Long.getLong("messenger.replica.stickyMillis", 5000L);
+      String list = System.getProperty("messenger.replicas", "");
+      for (String endpoint : list.split(",")) {
+         endpoint = endpoint.trim();
+         if (!endpoint.isEmpty())
+            this._replicas.add(new Replica("jdbc:postgresql://" + endpoint));
+      }//end for
+
+      if (!this._replicas.isEmpty()) {
+         this._running = true;
+         this._prober = new Thread(new Runnable() {
+            public void run () {
+               probeLoop();
+            }
+         }, "replica-prober");
+         this._prober.setDaemon(true);
+         this._prober.start();
+      }//end if
+   }//end DataSourceRouter
+
+   /**
+    * @return the connection every write must use
+    */
+   public Connection primary () {
+      return this._primary;
+   }
+
+   /**
+    * Records that the given user just changed data, so their next reads
+    * are served by the primary.
+    *
+    * @param login the user that wrote, ignored when null
+    */
+   public synchronized void noteWrite (String login) {
+      if (login != null)
+         this._lastWrite.put(login, System.currentTimeMillis());
+   }//end noteWrite
+
+   /**
+    * Picks a connection for a read-only query. Every call must be paired
+    * with release().
+    *
+    * @param login the user issuing the read, may be null
+    * @return a replica connection, or the primary when none qualifies
+    */
+   public synchronized Connection acquireRead (String login) {
+      if (this._replicas.isEmpty()) {
+         this._primaryReads++;
+         return this._primary;
+      }//end if
+      long now = System.currentTimeMillis();
+      Long wrote = login == null ? null : this._lastWrite.get(login);
+      if (wrote != null && now - wrote < this._stickyMillis) {
+         this._stickyFallbacks++;
+         this._primaryReads++;
+         return this._primary;
+      }//end if
+
+      Replica best = null;
+      int size = this._replicas.size();
+      for (int i = 0; i < size; i++) {
+         Replica r = this._replicas.get((this._next + i) % size);
+         if (!r.healthy || r.lagMillis > this._maxLagMillis)
+            continue;
+         if (!this._leastLoaded) {
+            best = r;
+            break;
+         }
+         if (best == null || r.inFlight < best.inFlight)
+            best = r;
+      }//end for
+      this._next = (this._next + 1) % size;
+
+      if (best == null) {
+         this._lagFallbacks++;
+         this._primaryReads++;
+         return this._primary;
+      }//end if
+      best.inFlight++;
+      best.reads++;
+      return best.connection;
+   }//end acquireRead
+
+   /**
+    * Returns a connection obtained from acquireRead().
+    *
+    * @param conn the connection that was used
+    * @param failed true when the query failed, the replica is then skipped
+    *               until the prober has reopened its connection
+    */
+   public synchronized void release (Connection conn, boolean failed) {
+      for (Replica r : this._replicas) {
+         if (r.connection == conn) {
+            r.inFlight--;
+            if (failed) {
+               r.healthy = false;
+               r.broken = true;
+               r.nextCheckAt = 0;
+            }//end if
+         }//end if
+      }//end for
+   }//end release
+
+   /*
+    * Body of the prober thread: re-measures every replica that is due
+    **/
+   private void probeLoop () {
+      while (this._running) {
+         for (Replica r : this._replicas) {
+            boolean due;
+            synchronized (this) {
+               due = System.currentTimeMillis() >= r.nextCheckAt;
+            }
+            if (due && this._running)
+               probe(r);
+         }//end for
+         try {
+            Thread.sleep(this._lagCheckMillis);
+         }catch (InterruptedException e){
+            // woken up by close
+         }
+      }//end while
+   }//end probeLoop
+
+   /**
+    * Measures how far behind the primary a replica is, and (re)opens its
+    * read connection when needed. A replica that has replayed up to the
+    * primary's current WAL position, or is not in recovery at all, has no
+    * lag. Otherwise the lag is the age of the last replayed commit, unknown
+    * lag counts as too much. Runs on the prober thread and only takes the
+    * router lock to publish the result.
+    */
+   private void probe (Replica r) {
+      Connection probe, stale = null;
+      synchronized (this) {
+         probe = r.probe;
+         if (r.broken && r.inFlight == 0) {
+            stale = r.connection;
+            r.connection = null;
+            r.broken = false;
+         }//end if
+      }
+      closeQuietly(stale);
+      try {
+         String primaryLsn = primaryLsn();
+         if (probe == null)
+            probe = DriverManager.getConnection(r.url, this._user, this._passwd);
+         Statement stmt = probe.createStatement ();
+         ResultSet rs = stmt.executeQuery (String.format("SELECT CASE WHEN NOT pg_is_in_recovery() OR pg_last_wal_replay_lsn() >= '%s'::pg_lsn THEN 0 ELSE EXTRACT(EPOCH FROM (now() - pg_last_xact_replay_timestamp())) * 1000 END", primaryLsn));
+         long lag = Long.MAX_VALUE;
+         if (rs.next()) {
+            double millis = rs.getDouble(1);
+            if (!rs.wasNull())
+               lag = (long) millis;
+         }//end if
+         stmt.close ();
+
+         boolean needRead;
+         synchronized (this) {
+            needRead = r.connection == null && !r.broken;
+         }
+         Connection read = null;
+         if (needRead)
+            read = DriverManager.getConnection(r.url, this._user, this._passwd);
+
+         synchronized (this) {
+            r.probe = probe;
+            if (read != null)
+               r.connection = read;
+            r.lagMillis = lag;
+            r.failures = 0;
+            r.healthy = r.connection != null && !r.broken;
+            r.nextCheckAt = System.currentTimeMillis() + this._lagCheckMillis;
+         }
+      }catch (SQLException e){
+         System.err.println("Replica " + r.url + " unavailable: " + e.getMessage());
+         closeQuietly(probe);
+         synchronized (this) {
+            r.probe = null;
+            r.healthy = false;
+            // the read connection most likely died too
+            if (r.connection != null)
+               r.broken = true;
+            r.failures++;
+            long backoff = this._lagCheckMillis << Math.min(r.failures, 16);
+            r.nextCheckAt = System.currentTimeMillis() + Math.min(backoff, this._maxBackoffMillis);
+         }
+      }
+   }//end probe
+
+   /*
+    * Reads the current WAL position of the primary over the prober's own
+    * connection, reopened after a failure
+    **/
+   private String primaryLsn () throws SQLException {
+      try {
+         if (this._probePrimary == null)
+            this._probePrimary = DriverManager.getConnection(this._primaryUrl, this._user, this._passwd);
+         Statement stmt = this._probePrimary.createStatement ();
+         ResultSet rs = stmt.executeQuery ("SELECT pg_current_wal_lsn()");
+         rs.next();
+         String lsn = rs.getString(1);
+         stmt.close ();
+         return lsn;
+      }catch (SQLException e){
+         closeQuietly(this._probePrimary);
+         this._probePrimary = null;
+         throw e;
+      }
+   }//end primaryLsn
+
+   private static void closeQuietly (Connection conn) {
+      try{
+         if (conn != null)
+            conn.close ();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end closeQuietly
+
+   /**
+    * Prints the routing metrics to standard out.
+    */
+   public synchronized void printStatus () {
+      if (this._replicas.isEmpty())
+         return;
+      System.out.println("READ ROUTING");
+      System.out.println("------------");
+      for (Replica r : this._replicas)
+         System.out.println(r.url + "\treads " + r.reads + "\tlag ms " + (r.lagMillis == Long.MAX_VALUE ? "unknown" : String.valueOf(r.lagMillis)) + (r.healthy ? "" : "\tDOWN"));
+      System.out.println("primary reads\t" + this._primaryReads);
+      System.out.println("lag fallbacks\t" + this._lagFallbacks);
+      System.out.println("read-your-writes fallbacks\t" + this._stickyFallbacks);
+   }//end printStatus
+
+   /**
+    * Stops the prober and closes the replica connections. The primary is
+    * owned by the caller.
+    */
+   public void close () {
+      this._running = false;
+      if (this._prober != null) {
+         this._prober.interrupt();
+         try {
+            this._prober.join(1000);
+         }catch (InterruptedException e){
+            // ignored.
+         }
+      }//end if
+      synchronized (this) {
+         for (Replica r : this._replicas) {
+            closeQuietly(r.connection);
+            closeQuietly(r.probe);
+         }//end for
+      }
+      closeQuietly(this._probePrimary);
+   }//end close
+}//end DataSourceRouter
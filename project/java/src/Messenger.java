@@ -35,6 +35,21 @@ public class Messenger {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // background workers that remove soft-deleted users and chats, one per database
+   private List<Reaper> _reapers = new ArrayList<Reaper>();
+
+   // sends read-only queries to replicas, everything else to _connection
+   private DataSourceRouter _router = null;
+
+   // chat databases, null when chats live in the primary database
+   private ShardMap _shards = null;
+
+   // rate limits and concurrency cap for LogIn, StartNewChat and CreateMessage
+   private AdmissionControl _admission = null;
+
+   // login of the user currently using this session, null when logged out
+   private String _sessionUser = null;
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -50,6 +65,22 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Messenger (String dbname, String dbport, String user, String passwd) throws SQLException {
+      this(dbname, dbport, user, passwd, new ArrayList<String>());
+   }//end Messenger
+
+   /**
+    * Creates a new instance of Messenger with chats sharded over several
+    * databases. Users and their lists stay in the primary database.
+    *
+    * @param dbname the name of the primary database
+    * @param dbport the port of the primary database
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param shards host:port/dbname of every chat shard, empty to keep
+    *               chats in the primary database
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Messenger (String dbname, String dbport, String user, String passwd, List<String> shards) throws SQLException {
 
       System.out.print("Connecting to database...");
       try{
@@ -60,6 +91,21 @@ public class Messenger {
          // obtain a physical connection
          this._connection = DriverManager.getConnection(url, user, passwd);
          System.out.println("Done");
+         this._router = new DataSourceRouter(this._connection, url, user, passwd);
+         this._admission = new AdmissionControl(this._connection);
+
+         if (!shards.isEmpty()) {
+            this._shards = new ShardMap(shards, user, passwd);
+            for (int i = 0; i < this._shards.size(); i++)
+               System.out.println("Chat shard " + i + ": " + this._shards.url(i));
+         }//end if
+
+         // start removing soft-deleted rows in the background, unless a
+         // standalone Reaper takes care of it
+         if (Boolean.parseBoolean(System.getProperty("messenger.reaper.embedded", "true")))
+            this._reapers = Reaper.forDatabases(url, user, passwd, this._shards);
+         for (Reaper reaper : this._reapers)
+            reaper.start();
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
@@ -72,19 +118,58 @@ public class Messenger {
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @return the number of rows changed
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
+   public int executeUpdate (String sql) throws SQLException {
       // creates a statement object
       Statement stmt = this._connection.createStatement ();
 
       // issues the update instruction
-      stmt.executeUpdate (sql);
+      int rows = stmt.executeUpdate (sql);
 
       // close the instruction
       stmt.close ();
+
+      // keep this user's reads on the primary until replicas catch up
+      if (rows > 0)
+         this._router.noteWrite(this._sessionUser);
+      return rows;
    }//end executeUpdate
 
+   /**
+    * Asks admission control whether an operation may run now. Prints why
+    * when it may not. Every true result must be paired with leave().
+    *
+    * @param login the user the operation runs for
+    * @param operation the operation name, e.g. CreateMessage
+    * @return true if the operation may run
+    * @throws java.sql.SQLException when the limits could not be checked
+    */
+   public boolean admit (String login, String operation) throws SQLException {
+      if (this._admission.enter(login, operation))
+         return true;
+      System.out.println("Too many requests, please try again later.");
+      return false;
+   }//end admit
+
+   /**
+    * Ends an operation that was let in by admit().
+    */
+   public void leave () {
+      this._admission.exit();
+   }//end leave
+
+   /**
+    * Sets the user the following statements are issued for. Used to give
+    * that user read-your-writes consistency when reads go to replicas.
+    *
+    * @param login the logged in user, or null after log out
+    */
+   public void setSessionUser (String login) {
+      this._sessionUser = login;
+   }//end setSessionUser
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
@@ -95,8 +180,147 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
+      return printResult(this._connection, query);
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Same as executeQueryAndPrintResult() but for read-only queries that may
+    * be served by a replica. If the replica fails the query is retried on
+    * the primary.
+    *
+    * @param query the input query string, must not modify data
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeReadQueryAndPrintResult (String query) throws SQLException {
+      Connection conn = this._router.acquireRead(this._sessionUser);
+      if (conn == this._connection)
+         return printResult(conn, query);
+      try {
+         int rowCount = printResult(conn, query);
+         this._router.release(conn, false);
+         return rowCount;
+      }catch (SQLException e){
+         this._router.release(conn, true);
+         return printResult(this._connection, query);
+      }
+   }//end executeReadQueryAndPrintResult
+
+   /**
+    * Executes an update on the database holding the given chat.
+    *
+    * @param cid the chat the statement touches
+    * @param sql the input SQL string
+    * @return the number of rows changed
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeChatUpdate (int cid, String sql) throws SQLException {
+      if (this._shards == null)
+         return executeUpdate(sql);
+      int rows = this._shards.executeUpdate(cid, sql);
+      if (rows > 0)
+         this._router.noteWrite(this._sessionUser);
+      return rows;
+   }//end executeChatUpdate
+
+   /**
+    * Executes an update on every database that holds chat data.
+    *
+    * @param sql the input SQL string
+    * @throws java.sql.SQLException when update failed
+    */
+   public void executeUpdateOnAllChats (String sql) throws SQLException {
+      if (this._shards == null)
+         executeUpdate(sql);
+      else
+         this._shards.broadcastUpdate(sql);
+   }//end executeUpdateOnAllChats
+
+   /**
+    * Same as executeQuery() for a query on a single chat's data.
+    *
+    * @param cid the chat the query reads
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeChatQuery (int cid, String query) throws SQLException {
+      if (this._shards == null)
+         return executeQuery(query);
+      return this._shards.executeQuery(cid, query);
+   }//end executeChatQuery
+
+   /**
+    * Same as executeReadQueryAndPrintResult() for a query on a single chat's
+    * data.
+    *
+    * @param cid the chat the query reads
+    * @param query the input query string, must not modify data
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeChatReadQueryAndPrintResult (int cid, String query) throws SQLException {
+      if (this._shards == null)
+         return executeReadQueryAndPrintResult(query);
+      int shard = this._shards.shardOf(cid);
+      Connection conn = this._shards.borrow(shard);
+      boolean ok = false;
+      try {
+         int rowCount = printResult(conn, query);
+         ok = true;
+         return rowCount;
+      }finally {
+         this._shards.giveBack(shard, conn, !ok);
+      }
+   }//end executeChatReadQueryAndPrintResult
+
+   /**
+    * Runs a read-only query over the chats of every database in parallel
+    * and prints the merged rows.
+    *
+    * @param query the input query string, must not modify data
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeScatterQueryAndPrintResult (String query) throws SQLException {
+      if (this._shards == null)
+         return executeReadQueryAndPrintResult(query);
+      List<List<String>> result = this._shards.scatter(query);
+      int rowCount = result.size() - 1;
+      if (rowCount > 0) {
+         for (List<String> record : result) {
+            for (String value : record)
+               System.out.print (value + "\t");
+            System.out.println ();
+         }//end for
+      }//end if
+      return rowCount;
+   }//end executeScatterQueryAndPrintResult
+
+   /**
+    * Allocates the id of a new chat. Without shards this is the next value
+    * of chat_chat_id_seq, with shards it also picks the shard.
+    *
+    * @return the new chat id
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int nextChatId () throws SQLException {
+      if (this._shards != null)
+         return this._shards.nextChatId();
       Statement stmt = this._connection.createStatement ();
+      ResultSet rs = stmt.executeQuery ("SELECT nextval('chat_chat_id_seq')");
+      rs.next();
+      int cid = rs.getInt(1);
+      stmt.close ();
+      return cid;
+   }//end nextChatId
+
+   /*
+    * Runs the query on the given connection and prints the rows
+    **/
+   private static int printResult (Connection conn, String query) throws SQLException {
+      // creates a statement object
+      Statement stmt = conn.createStatement ();
 
       // issues the query instruction
       ResultSet rs = stmt.executeQuery (query);
@@ -126,7 +350,7 @@ public class Messenger {
       }//end while
       stmt.close ();
       return rowCount;
-   }//end executeQuery
+   }//end printResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -212,6 +436,20 @@ public class Messenger {
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
+      if (this._admission != null)
+         this._admission.printStatus();
+      for (Reaper reaper : this._reapers){
+         reaper.printStatus();
+         reaper.shutdown();
+      }//end for
+      if (this._router != null){
+         this._router.printStatus();
+         this._router.close();
+      }//end if
+      if (this._shards != null){
+         this._shards.printStatus();
+         this._shards.close();
+      }//end if
       try{
          if (this._connection != null){
             this._connection.close ();
@@ -225,14 +463,15 @@ public class Messenger {
     * The main execution method
     *
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+    *             optionally followed by the host:port/dbname of each chat shard
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length < 3) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Messenger.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [<shard host:port/dbname> ...]");
          return;
       }//end if
       
@@ -246,7 +485,10 @@ public class Messenger {
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
-         esql = new Messenger (dbname, dbport, user, "");
+         List<String> shards = new ArrayList<String>();
+         for (int i = 3; i < args.length; i++)
+            shards.add(args[i]);
+         esql = new Messenger (dbname, dbport, user, "", shards);
 
          boolean keepon = true;
          while(keepon) {
@@ -264,6 +506,7 @@ public class Messenger {
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
             if (authorisedUser != null) {
+              esql.setSessionUser(authorisedUser);
               boolean usermenu = true;
               boolean OpenChat = true;
               for (int i = 0; i <25; i++){
@@ -289,12 +532,12 @@ public class Messenger {
                    case 2: ListContacts(esql, authorisedUser); cls(); break;
                    case 3: ReadNotifications(esql, authorisedUser); cls(); break;
                    case 4: ViewBlock(esql, authorisedUser); cls(); break;
-                   case 5: DeleteAccount(esql, authorisedUser); cls(); break;
+                   case 5: if (DeleteAccount(esql, authorisedUser)) { usermenu = false; esql.setSessionUser(null); } cls(); break;
                    case 6: AddBlock(esql, authorisedUser); cls(); break;
                    case 7: ShowChat(esql,authorisedUser); cls(); break;
                    case 8: OpenChat = false; break;
                    case 9: StartNewChat(esql, authorisedUser); break;
-                   case 10: usermenu = false; break;
+                   case 10: usermenu = false; esql.setSessionUser(null); break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
                 if (OpenChat == false)
@@ -304,8 +547,8 @@ public class Messenger {
                         Scanner in = new Scanner(System.in);
                         int cid1 = in.nextInt();
     //CHECKER
-                        String query = String.format("SELECT * FROM CHAT_LIST WHERE member='%s' AND chat_id='%s'", authorisedUser, cid1);
-                        int check = esql.executeQuery(query);
+                        String query = String.format("SELECT * FROM CHAT_LIST CL, CHAT C WHERE CL.member='%s' AND CL.chat_id='%s' AND C.chat_id=CL.chat_id AND C.deleted_at IS NULL", authorisedUser, cid1);
+                        int check = esql.executeChatQuery(cid1, query);
                         if (check > 0) {
                                             boolean ChatOn = true;
                           for (int i = 0; i <25; i++){
@@ -331,7 +574,7 @@ public class Messenger {
                                     case 1: BrowseChatMembers(esql, authorisedUser,cid1);cls(); break;
                                     case 2: AddMemberToChat(esql, authorisedUser, cid1); cls();break;
                                     case 3: DeleteMemberFromChat(esql, authorisedUser, cid1); cls();break;
-                                    case 4: DeleteEntireChat(esql, authorisedUser, cid1); cls(); break;
+                                    case 4: if (DeleteEntireChat(esql, authorisedUser, cid1)) { ChatOn = false; OpenChat = true; } cls(); break;
                                     case 5: ViewMessages(esql, authorisedUser, cid1); break;
                                     case 6: CreateMessage(esql, authorisedUser, cid1); break;
                                     case 7: DeleteMessage(esql, authorisedUser, cid1); cls(); break;
@@ -448,11 +691,17 @@ public class Messenger {
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
-		return login;
-         return null;
+         if (!esql.admit(login, "LogIn"))
+            return null;
+         try {
+            String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s' AND deleted_at IS NULL", login, password);
+            int userNum = esql.executeQuery(query);
+            if (userNum > 0)
+               return login;
+            return null;
+         }finally {
+            esql.leave();
+         }
       }catch(Exception e){
          System.err.println (e.getMessage ());
          return null;
@@ -466,7 +715,7 @@ public class Messenger {
          String cname = in.readLine();
 
          //check if user exists
-         String query = String.format("SELECT * FROM Usr WHERE login = '%s'", cname);
+         String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND deleted_at IS NULL", cname);
          int userNum = esql.executeQuery(query);
 	 if (userNum > 0){
         String query1 = String.format("INSERT INTO USER_LIST_CONTAINS (list_id, list_member) SELECT contact_list,'%s' FROM Usr WHERE login='%s'", cname, auth);
@@ -482,8 +731,8 @@ public class Messenger {
 //CASE2
    public static void ListContacts(Messenger esql, String auth){
         try {
-       String query = String.format("SELECT UL.list_member , U.status FROM USER_LIST_CONTAINS UL, Usr U WHERE UL.list_member=U.login AND UL.list_id IN (SELECT U3.contact_list FROM Usr U3 WHERE U3.login='%s')", auth);
-        esql.executeQueryAndPrintResult(query);
+       String query = String.format("SELECT UL.list_member , U.status FROM USER_LIST_CONTAINS UL, Usr U WHERE UL.list_member=U.login AND U.deleted_at IS NULL AND UL.list_id IN (SELECT U3.contact_list FROM Usr U3 WHERE U3.login='%s')", auth);
+        esql.executeReadQueryAndPrintResult(query);
 
     } catch(Exception e){
         System.err.println (e.getMessage ());
@@ -494,11 +743,16 @@ public class Messenger {
     //CASE3
    public static void ReadNotifications(Messenger esql, String auth){
     try {
-            String query = String.format("SELECT N.msg_id FROM NOTIFICATION N, USR U WHERE U.login=N.usr_login AND N.usr_login='%s'", auth);
-            esql.executeQueryAndPrintResult(query);            
+            //unread counts come from the read watermarks, no per-message rows needed
+            String unread = String.format("SELECT CL.chat_id, CH.msg_count - CL.read_count AS unread FROM CHAT_LIST CL, CHAT CH WHERE CL.member='%s' AND CH.chat_id=CL.chat_id AND CH.deleted_at IS NULL AND CH.msg_count > CL.read_count", auth);
+            if (esql.executeScatterQueryAndPrintResult(unread) == 0)
+                System.out.println("No unread messages.");
+
+            String query = String.format("SELECT M.chat_id, N.msg_id FROM NOTIFICATION N, MESSAGE M WHERE M.msg_id=N.msg_id AND N.usr_login='%s'", auth);
+            esql.executeScatterQueryAndPrintResult(query);            
             
             String query1 = String.format("DELETE FROM NOTIFICATION WHERE usr_login='%s'", auth);
-            esql.executeUpdate(query1);
+            esql.executeUpdateOnAllChats(query1);
     }catch(Exception e){
         System.out.println(e.getMessage());
     }
@@ -507,19 +761,35 @@ public class Messenger {
    //CASE4
     public static void ViewBlock(Messenger esql, String auth){
         try {
-        String query = String.format("SELECT list_member FROM USER_LIST_CONTAINS WHERE list_id IN (SELECT block_list FROM Usr WHERE login='%s')", auth);
-        esql.executeQueryAndPrintResult(query);            
+        String query = String.format("SELECT UL.list_member FROM USER_LIST_CONTAINS UL, Usr U WHERE UL.list_member=U.login AND U.deleted_at IS NULL AND UL.list_id IN (SELECT block_list FROM Usr WHERE login='%s')", auth);
+        esql.executeReadQueryAndPrintResult(query);            
         }catch(Exception e){
             System.err.println(e.getMessage());
         }
     }
     //CASE 5
-    public static void DeleteAccount(Messenger esql, String auth){
+    /*
+     * Soft-deletes the account: the user and the chats they started become
+     * invisible immediately, the Reaper removes the rows in the background
+     **/
+    public static boolean DeleteAccount(Messenger esql, String auth){
         try {
-                String query = String.format("DELETE FROM Usr WHERE login='%s'", auth);
+                String query = String.format("UPDATE Usr SET deleted_at = now() WHERE login='%s' AND deleted_at IS NULL", auth);
                 esql.executeUpdate(query);
+                // tombstone for the databases holding chat data, the Reaper
+                // pushes it again wherever this fails
+                try {
+                    for (String querytomb : Reaper.tombstoneStatements(auth))
+                        esql.executeUpdateOnAllChats(querytomb);
+                    esql.executeUpdate(String.format("UPDATE Usr SET tombstoned = true WHERE login='%s'", auth));
+                }catch(SQLException e){
+                    System.err.println("Some chats could not be hidden yet, they will be shortly: " + e.getMessage());
+                }
+                System.out.println("The account has been deleted.");
+                return true;
         }catch(Exception e){
             System.err.println(e.getMessage());
+            return false;
         }
     }
 
@@ -530,7 +800,7 @@ public class Messenger {
          String cname = in.readLine();
 
          //check if user exists
-         String query = String.format("SELECT * FROM Usr WHERE login = '%s'", cname);
+         String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND deleted_at IS NULL", cname);
          int userNum = esql.executeQuery(query);
 	 if (userNum > 0){
         String query1 = String.format("INSERT INTO USER_LIST_CONTAINS (list_id, list_member) SELECT block_list,'%s' FROM Usr WHERE login='%s'", cname, auth);
@@ -548,11 +818,11 @@ public class Messenger {
     try {
          //String query = String.format("SELECT chat_id FROM CHAT_LIST WHERE member='%s'",auth);
          
-         String query=String.format("SELECT C.chat_id, MAX(m.msg_timestamp) FROM CHAT_LIST C, MESSAGE M WHERE C.member='%s' AND C.chat_id= M.chat_id GROUP BY C.chat_id",auth);
+         String query=String.format("SELECT C.chat_id, (SELECT M.msg_timestamp FROM MESSAGE M WHERE M.msg_id=CH.last_msg_id) AS last_message, CH.msg_count - C.read_count AS unread FROM CHAT_LIST C, CHAT CH WHERE C.member='%s' AND CH.chat_id=C.chat_id AND CH.deleted_at IS NULL AND CH.last_msg_id>0",auth);
         
          //String query = String.format("SELECT DISTINCT ON (chat_id) C.chat_id, m.msg_timestamp FROM CHAT_LIST C, MESSAGE M WHERE C.member='%s' ORDER BY m.msg_timestamp DESC",auth);
 
-         esql.executeQueryAndPrintResult(query);
+         esql.executeScatterQueryAndPrintResult(query);
       }catch(Exception e){
          System.err.println (e.getMessage ());
       }
@@ -560,14 +830,7 @@ public class Messenger {
   //case 2
   public static void StartNewChat(Messenger esql, String auth) {
       try {
-                        //insert newchat into CHAT
-                        String query1 = String.format("INSERT INTO CHAT (chat_type, init_sender) VALUES ('private', '%s')", auth);
-                        esql.executeUpdate(query1);
-                        int cid= esql.getCurrSeqVal("chat_chat_id_seq");
-                        //insert newchat into CHAT_LIST
-                        String query2 = String.format("INSERT INTO CHAT_LIST (chat_id, member) VALUES ('%s', '%s')", cid, auth);
-                        esql.executeUpdate(query2);
-                        System.out.println(cid);
+                        List<String> members = new ArrayList<String>();
                         boolean true1 = true;
                         while(true1)
                         {
@@ -576,17 +839,33 @@ public class Messenger {
                             if (adder.equals("quit")) true1=false;
                             else 
                             {
-                                String checker = String.format("SELECT * FROM Usr WHERE login = '%s'", adder);
+                                String checker = String.format("SELECT * FROM Usr WHERE login = '%s' AND deleted_at IS NULL", adder);
                                 int userNum = esql.executeQuery(checker);
-                                if (userNum > 0){
-                                        String query3 = String.format("INSERT INTO CHAT_LIST (chat_id, member) VALUES ('%s', '%s')", cid, adder);
-                                        esql.executeUpdate(query3);
-                                        
-                                    }
+                                if (userNum > 0) members.add(adder);
                                 else System.out.println("Invalid entry, try again!");
                             }
 
                         }
+                        //only the inserts count against the limits, not the typing
+                        if (!esql.admit(auth, "StartNewChat"))
+                            return;
+                        int cid;
+                        try {
+                            //insert newchat into CHAT
+                            cid= esql.nextChatId();
+                            String query1 = String.format("INSERT INTO CHAT (chat_id, chat_type, init_sender) VALUES ('%s', 'private', '%s')", cid, auth);
+                            esql.executeChatUpdate(cid, query1);
+                            //insert newchat into CHAT_LIST
+                            String query2 = String.format("INSERT INTO CHAT_LIST (chat_id, member) VALUES ('%s', '%s')", cid, auth);
+                            esql.executeChatUpdate(cid, query2);
+                            for (String adder : members) {
+                                String query3 = String.format("INSERT INTO CHAT_LIST (chat_id, member) VALUES ('%s', '%s')", cid, adder);
+                                esql.executeChatUpdate(cid, query3);
+                            }
+                        }finally {
+                            esql.leave();
+                        }
+                        System.out.println(cid);
                         CreateMessage(esql, auth, cid);
       }catch(Exception e) {
           System.err.println (e.getMessage());
@@ -596,8 +875,8 @@ public class Messenger {
     public static void BrowseChatMembers(Messenger esql, String auth,int cid){
         try{
             
-            String query = String.format("SELECT member FROM CHAT_LIST WHERE chat_id='%s'", cid);
-            esql.executeQueryAndPrintResult(query);
+            String query = String.format("SELECT member FROM CHAT_LIST WHERE chat_id='%s' AND member NOT IN (SELECT login FROM DELETED_USR)", cid);
+            esql.executeChatReadQueryAndPrintResult(cid, query);
         }catch(Exception e) {
             System.err.println (e.getMessage());
         }
@@ -609,12 +888,13 @@ public class Messenger {
                 System.out.println("Enter Member to add into chat: ");
                 String mem = in.readLine();
                 
-                String querycheck = String.format("SELECT * FROM CHAT_LIST WHERE member='%s'", mem);
+                String querycheck = String.format("SELECT * FROM Usr WHERE login='%s' AND deleted_at IS NULL", mem);
                 int checker = esql.executeQuery(querycheck);
                 if (checker > 0)
                 {
-                    String querya = String.format("INSERT INTO CHAT_LIST (chat_id, member) VALUES ('%s','%s')", cid, mem);
-                    esql.executeUpdate(querya); 
+                    String querya = String.format("INSERT INTO CHAT_LIST (chat_id, member) SELECT %d, '%s' WHERE EXISTS (SELECT 1 FROM CHAT WHERE chat_id=%d AND deleted_at IS NULL)", cid, mem, cid);
+                    if (esql.executeChatUpdate(cid, querya) == 0)
+                        System.out.println("This chat has been deleted.");
                 }
                 else System.out.println("Invalid member name");
         }catch (Exception e) {
@@ -628,12 +908,12 @@ public class Messenger {
                  System.out.println("Enter member to be deleted: ");
                 String mem = in.readLine();
                 
-                String querycheck = String.format("SELECT * FROM CHAT_LIST WHERE member='%s'", mem);
-                int checker = esql.executeQuery(querycheck);
+                String querycheck = String.format("SELECT * FROM CHAT_LIST WHERE member='%s' AND chat_id='%s'", mem, cid);
+                int checker = esql.executeChatQuery(cid, querycheck);
                 if (checker > 0)
                 {
-                    String queryd = String.format("DELETE FROM CHAT_LIST WHERE member='%s'", mem);
-                    esql.executeUpdate(queryd); 
+                    String queryd = String.format("DELETE FROM CHAT_LIST WHERE member='%s' AND chat_id='%s'", mem, cid);
+                    esql.executeChatUpdate(cid, queryd); 
                 }
                 else System.out.println("Invalid member name");
 
@@ -642,25 +922,27 @@ public class Messenger {
             }
     }     
 //case 6
-  public static void DeleteEntireChat(Messenger esql, String auth,int cid){
+  /*
+   * Soft-deletes the chat, it disappears for every member at once
+   * @return true if the chat is gone and its menu should be left
+   **/
+  public static boolean DeleteEntireChat(Messenger esql, String auth,int cid){
        try {
                 System.out.println("Are you sure you want to delete this entire chat? Type yes or no");
                 String check = in.readLine();
                 if (check.equals("yes"))
                 {
-                    String querycl = String.format("DELETE FROM CHAT_LIST WHERE chat_id='%s'", cid);
-                    String querym = String.format("DELETE FROM MESSAGE WHERE chat_id='%s'", cid);
-                    String querychat = String.format("DELETE FROM CHAT WHERE chat_id='%s'", cid);
-                    
-                    esql.executeUpdate(querycl);
-                    esql.executeUpdate(querym);
-                    esql.executeUpdate(querychat);
+                    // soft delete, members and messages are removed by the Reaper
+                    String querychat = String.format("UPDATE CHAT SET deleted_at = now() WHERE chat_id='%s' AND deleted_at IS NULL", cid);
+                    esql.executeChatUpdate(cid, querychat);
                     System.out.println("The Chat has been deleted.");
+                    return true;
                 }
                 else System.out.println("Chat was not deleted");
         }catch (Exception e) {
             System.err.println(e.getMessage());
             }
+        return false;
     }     
  //case 7
  public static void ViewMessages(Messenger esql, String auth,int cid) {
@@ -668,12 +950,15 @@ public class Messenger {
 
                     boolean trueloop = true;
                     int var1=0;
-                    String query1 = String.format("SELECT DISTINCT M.sender_login, M.msg_timestamp, M.msg_text, A.media_type, A.URL FROM MESSAGE M, MEDIA_ATTACHMENT A WHERE M.chat_id='%s' AND A.msg_id=M.msg_id UNION SELECT DISTINCT M.sender_login, M.msg_timestamp, M.msg_text,NULL AS media_type, NULL AS URL FROM MESSAGE M, MEDIA_ATTACHMENT A WHERE M.chat_id='%s' ORDER BY msg_timestamp DESC limit 10", cid, cid);
-                    esql.executeQueryAndPrintResult(query1);
-                    
                     //self destruct messages
-                    String query4 = "DELETE FROM MESSAGE WHERE destr_timestamp < msg_timestamp";
-                    esql.executeUpdate(query4);
+                    String query4 = String.format("DELETE FROM MESSAGE WHERE chat_id='%s' AND destr_timestamp < msg_timestamp", cid);
+                    if (esql.executeChatUpdate(cid, query4) > 0)
+                        RecountChat(esql, cid);
+
+                    //everything up to the newest message is read now
+                    MarkChatRead(esql, auth, cid);
+
+                    esql.executeChatReadQueryAndPrintResult(cid, MessagePage(cid, var1));
                     
                     while (trueloop)
                     {
@@ -687,9 +972,7 @@ public class Messenger {
                         else if (input.equals("more"))
                         {
                             var1+=10;
-                            String query2 = String.format("SELECT DISTINCT M.sender_login, M.msg_timestamp, M.msg_text, A.media_type, A.URL FROM MESSAGE M, MEDIA_ATTACHMENT A WHERE M.chat_id='%s' AND A.msg_id=M.msg_id UNION SELECT DISTINCT M.sender_login, M.msg_timestamp, M.msg_text,NULL AS media_type, NULL AS URL FROM MESSAGE M, MEDIA_ATTACHMENT A WHERE M.chat_id='%s' ORDER BY msg_timestamp DESC limit 10 OFFSET '%s'", cid, cid, var1);
-
-                            esql.executeQueryAndPrintResult(query2);
+                            esql.executeChatReadQueryAndPrintResult(cid, MessagePage(cid, var1));
                             
                         }
                         else System.out.println("Invalid entry. Try again.");
@@ -702,15 +985,51 @@ public class Messenger {
         System.err.println(e.getMessage());
     }
 }
+    /*
+     * Builds the query for one page of 10 messages, newest first. read_by is
+     * the read receipt: how many other members have read up to that message.
+     * A deleted chat shows nothing, also to members who still have it open
+     **/
+    private static String MessagePage(int cid, int offset) {
+        String page = String.format("SELECT DISTINCT M.msg_id, M.sender_login, M.msg_timestamp, M.msg_text, A.media_type, A.URL FROM MESSAGE M, MEDIA_ATTACHMENT A WHERE M.chat_id='%s' AND M.sender_login NOT IN (SELECT login FROM DELETED_USR) AND A.msg_id=M.msg_id UNION SELECT DISTINCT M.msg_id, M.sender_login, M.msg_timestamp, M.msg_text,NULL AS media_type, NULL AS URL FROM MESSAGE M, MEDIA_ATTACHMENT A WHERE M.chat_id='%s' AND M.sender_login NOT IN (SELECT login FROM DELETED_USR) ORDER BY msg_timestamp DESC limit 10 OFFSET '%s'", cid, cid, offset);
+        return String.format("SELECT V.msg_id, V.sender_login, V.msg_timestamp, V.msg_text, V.media_type, V.URL, (SELECT COUNT(*) FROM CHAT_LIST R WHERE R.chat_id='%s' AND R.member<>V.sender_login AND R.last_read_msg_id>=V.msg_id) AS read_by FROM (%s) V WHERE EXISTS (SELECT 1 FROM CHAT C WHERE C.chat_id='%s' AND C.deleted_at IS NULL) ORDER BY V.msg_timestamp DESC", cid, page, cid);
+    }
+    /*
+     * Moves the member's read watermark up to the newest message of the chat
+     **/
+    private static void MarkChatRead(Messenger esql, String auth, int cid) throws SQLException {
+        String query = String.format("UPDATE CHAT_LIST SET last_read_msg_id=C.last_msg_id, read_count=C.msg_count FROM CHAT C WHERE C.chat_id=CHAT_LIST.chat_id AND CHAT_LIST.chat_id='%s' AND CHAT_LIST.member='%s' AND CHAT_LIST.last_read_msg_id<C.last_msg_id", cid, auth);
+        esql.executeChatUpdate(cid, query);
+    }
+    /*
+     * Recomputes the message counters of a chat after messages were removed
+     **/
+    private static void RecountChat(Messenger esql, int cid) throws SQLException {
+        for (String query : Reaper.recountStatements(String.valueOf(cid)))
+            esql.executeChatUpdate(cid, query);
+    }
 //case 8
    public static void CreateMessage(Messenger esql, String auth,int cid) {
        try {
                 System.out.println("Enter Message: ");
                 String input = in.readLine();
-                
-                String query1 = String.format("INSERT INTO MESSAGE (msg_text, msg_timestamp, sender_login, chat_id) VALUES ('%s', 'now()', '%s', '%s')", input, auth, cid);
-                esql.executeUpdate(query1);
-                int msg1= esql.getCurrSeqVal("message_msg_id_seq");
+                if (!esql.admit(auth, "CreateMessage"))
+                    return;
+                try {
+                    //one statement: the message, the chat counters instead of a
+                    //notification row per member, and the sender's own watermark
+                    String message = String.format("INSERT INTO MESSAGE (msg_text, msg_timestamp, sender_login, chat_id) SELECT '%s', now(), '%s', %d WHERE EXISTS (SELECT 1 FROM CHAT C, CHAT_LIST L WHERE C.chat_id=%d AND C.deleted_at IS NULL AND L.chat_id=C.chat_id AND L.member='%s') RETURNING msg_id, chat_id", input, auth, cid, cid, auth);
+                    String counters = "UPDATE CHAT SET last_msg_id=GREATEST(CHAT.last_msg_id, m.msg_id), msg_count=CHAT.msg_count+1 FROM m WHERE CHAT.chat_id=m.chat_id RETURNING CHAT.last_msg_id, CHAT.msg_count";
+                    //read_count is the chat count when this is the newest message, else
+                    //a count up to the watermark (+1, the new row is not visible yet)
+                    String query = String.format("WITH m AS (%s), c AS (%s) UPDATE CHAT_LIST SET last_read_msg_id=GREATEST(CHAT_LIST.last_read_msg_id, m.msg_id), read_count=CASE WHEN c.last_msg_id=m.msg_id THEN c.msg_count ELSE (SELECT COUNT(*) FROM MESSAGE X WHERE X.chat_id=m.chat_id AND X.msg_id<=GREATEST(CHAT_LIST.last_read_msg_id, m.msg_id))+1 END FROM m, c WHERE CHAT_LIST.chat_id=m.chat_id AND CHAT_LIST.member='%s'", message, counters, auth);
+                    if (esql.executeChatUpdate(cid, query) == 0) {
+                        System.out.println("This chat has been deleted or you are no longer a member.");
+                        return;
+                    }
+                }finally {
+                    esql.leave();
+                }
               for (int i = 0; i <25; i++){
                   System.out.println("");
               }  
@@ -725,12 +1044,13 @@ public class Messenger {
             Scanner in1 = new Scanner(System.in);
             int input = in1.nextInt();          
             
-            String query1 = String.format("SELECT * FROM MESSAGE WHERE msg_id='%s'", input);
-            int valid = esql.executeQuery(query1);
+            String query1 = String.format("SELECT * FROM MESSAGE WHERE msg_id='%s' AND chat_id='%s'", input, cid);
+            int valid = esql.executeChatQuery(cid, query1);
             if (valid > 0) 
             {
-                String query = String.format("DELETE FROM MESSAGE WHERE msg_id='%s'", input);
-                esql.executeUpdate(query);
+                String query = String.format("DELETE FROM MESSAGE WHERE msg_id='%s' AND chat_id='%s'", input, cid);
+                esql.executeChatUpdate(cid, query);
+                RecountChat(esql, cid);
                 System.out.println("Message has been deleted successfully");
             }
             else System.out.println("Invalid ID.");
@@ -745,8 +1065,8 @@ public class Messenger {
                 int inputid = in.nextInt();                 
                 in.nextLine();
                 
-            String query1 = String.format("SELECT * FROM MESSAGE WHERE msg_id='%s'", inputid);
-            int valid = esql.executeQuery(query1);
+            String query1 = String.format("SELECT * FROM MESSAGE WHERE msg_id='%s' AND chat_id='%s'", inputid, cid);
+            int valid = esql.executeChatQuery(cid, query1);
 
             
             if (valid > 0) 
@@ -754,8 +1074,8 @@ public class Messenger {
                 System.out.println("Enter edited message: ");
                 String input = in.nextLine();
             
-                String query = String.format("UPDATE MESSAGE SET msg_text='%s' WHERE msg_id='%s'", input, inputid);
-                esql.executeUpdate(query);
+                String query = String.format("UPDATE MESSAGE SET msg_text='%s' WHERE msg_id='%s' AND chat_id='%s'", input, inputid, cid);
+                esql.executeChatUpdate(cid, query);
              } 
              else System.out.println("Invalid ID.");
      }catch(Exception e) {
@@ -0,0 +1,484 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.HashSet;
+
+/**
+ * Background worker that physically removes soft-deleted users and chats.
+ *
+ * DeleteAccount and DeleteEntireChat only stamp deleted_at, which hides the
+ * rows from every query right away. This thread then deletes the dependent
+ * rows a bounded batch at a time on its own connection, sleeping between
+ * batches so it never holds many row locks at once.
+ *
+ * When chats are sharded every database gets its own reaper: the primary
+ * one reaps the user lists, the shard ones reap chat data. Deleted users
+ * are known to chat databases through the DELETED_USR tombstones, which
+ * are dropped once nothing of that user is left on the database. The
+ * primary reaper re-pushes tombstones DeleteAccount failed to write, and
+ * only removes a USR row once no chat database holds its tombstone any
+ * more, so the login cannot be taken again while old rows are reaped.
+ * It also drops the AdmissionControl buckets nobody used for an hour.
+ *
+ * Only one reaper per database does any work: it must hold a session
+ * advisory lock first, the others keep retrying in case it goes away. Run
+ * this class on its own to keep reaping while no client is connected:
+ *    java Reaper <dbname> <port> <user> [<shard host:port/dbname> ...]
+ *
+ * Tunables (system properties):
+ *    messenger.reaper.batchSize     rows per DELETE (default 500)
+ *    messenger.reaper.throttleMillis pause after a non-empty batch (default 200)
+ *    messenger.reaper.idleMillis    pause when there is nothing to do (default 5000)
+ *    messenger.reaper.embedded      false to not start reapers inside Messenger (default true)
+ */
+public class Reaper implements Runnable {
+
+   // names of the reaping steps, in the order they are attempted
+   static final String[] STEPS = {
+      "MESSAGE (deleted chat)",
+      "MESSAGE (deleted sender)",
+      "NOTIFICATION",
+      "CHAT_LIST",
+      "CHAT",
+      "DELETED_USR",
+      "DELETED_USR (push)",
+      "USER_LIST_CONTAINS",
+      "USER_LIST",
+      "USR",
+      "RATE_LIMIT"
+   };
+
+   // STEPS before this index touch chat data, the rest user data
+   static final int FIRST_USER_STEP = 6;
+
+   // rate limit buckets untouched this long are full again and carry no state
+   static final int IDLE_BUCKET_SECONDS = 3600;
+
+   // advisory lock key held by the one reaper working on a database
+   static final long LEADER_LOCK = 166026L;
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final boolean _users;
+   private final boolean _chats;
+   // chat databases when sharded, null when chats are on this database
+   private final ShardMap _shards;
+   private final int _batchSize;
+   private final long _throttleMillis;
+   private final long _idleMillis;
+
+   private Connection _connection = null;
+   private Thread _thread = null;
+   private volatile boolean _running = false;
+   private boolean _leader = false;
+
+   // progress metrics, readable from the UI thread
+   private final long[] _rowsReaped = new long[STEPS.length];
+   private long _batches = 0;
+   private long _lastBatchMillis = 0;
+   private int _pendingUsers = 0;
+   private int _pendingChats = 0;
+
+   /**
+    * Creates a reaper that will open its own connection to the given database
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param users true if the database holds USR and the user lists
+    * @param chats true if the database holds chat data
+    * @param shards the chat shards a users reaper pushes tombstones to,
+    *               null when chats live on this database
+    */
+   public Reaper (String url, String user, String passwd, boolean users, boolean chats, ShardMap shards) {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._users = users;
+      this._chats = chats;
+      this._shards = shards;
+      this._batchSize = Integer.getInteger("messenger.reaper.batchSize", 500);
+      this._throttleMillis = Long.getLong("messenger.reaper.throttleMillis", 200L);
+      this._idleMillis = Long.getLong("messenger.reaper.idleMillis", 5000L);
+   }//end Reaper
+
+   /**
+    * Opens the reaper connection and starts the background thread.
+    *
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public void start () throws SQLException {
+      this._running = true;
+      this._thread = new Thread(this, "reaper " + this._url);
+      this._thread.setDaemon(true);
+      this._thread.start();
+   }//end start
+
+   /**
+    * Stops the background thread and closes its connection. The batch in
+    * flight, if any, is allowed to finish.
+    */
+   public void shutdown () {
+      this._running = false;
+      if (this._thread != null) {
+         this._thread.interrupt();
+         try {
+            this._thread.join(this._throttleMillis + 1000);
+         }catch (InterruptedException e){
+            // ignored.
+         }
+      }//end if
+      closeConnection();
+   }//end shutdown
+
+   private void closeConnection () {
+      try{
+         if (this._connection != null){
+            this._connection.close ();
+         }//end if
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+      this._connection = null;
+      this._leader = false;
+   }//end closeConnection
+
+   /*
+    * Tries to become the reaper of this database. The lock is released when
+    * the connection closes.
+    **/
+   private boolean tryLead () throws SQLException {
+      Statement stmt = this._connection.createStatement ();
+      ResultSet rs = stmt.executeQuery ("SELECT pg_try_advisory_lock(" + LEADER_LOCK + ")");
+      boolean leader = rs.next() && rs.getBoolean(1);
+      stmt.close ();
+      return leader;
+   }//end tryLead
+
+   public void run () {
+      while (this._running) {
+         long pause = this._idleMillis;
+         try {
+            if (this._connection == null)
+               this._connection = DriverManager.getConnection(this._url, this._user, this._passwd);
+            if (!this._leader)
+               this._leader = tryLead();
+            // otherwise another reaper is working on this database
+            if (this._leader) {
+               if (reapBatch() > 0)
+                  pause = this._throttleMillis;
+               else
+                  countPending();
+            }//end if
+         }catch (SQLException e){
+            System.err.println("Reaper: " + e.getMessage());
+            // the lock goes with the session, start over on a fresh one
+            closeConnection();
+         }
+         try {
+            Thread.sleep(pause);
+         }catch (InterruptedException e){
+            // woken up by shutdown
+         }
+      }//end while
+   }//end run
+
+   /**
+    * Runs a single bounded DELETE for the first step that still has work.
+    * Steps are ordered so that by the time a CHAT or USR row is removed its
+    * remaining cascade is empty.
+    *
+    * @return the number of rows removed, 0 when everything is reaped
+    */
+   int reapBatch () throws SQLException {
+      int from = this._chats ? 0 : FIRST_USER_STEP;
+      int to = this._users ? STEPS.length : FIRST_USER_STEP;
+      for (int i = from; i < to; i++) {
+         long start = System.currentTimeMillis();
+         int rows = runStep(i);
+         if (rows > 0) {
+            synchronized (this) {
+               this._rowsReaped[i] += rows;
+               this._batches++;
+               this._lastBatchMillis = System.currentTimeMillis() - start;
+            }
+            return rows;
+         }//end if
+      }//end for
+      return 0;
+   }//end reapBatch
+
+   private int runStep (int step) throws SQLException {
+      String tombstones = "SELECT login FROM DELETED_USR";
+      String deadUsers = "SELECT login FROM USR WHERE deleted_at IS NOT NULL";
+      String deadChats = "SELECT chat_id FROM CHAT WHERE deleted_at IS NOT NULL";
+      String deadLists = "SELECT block_list FROM USR WHERE deleted_at IS NOT NULL UNION SELECT contact_list FROM USR WHERE deleted_at IS NOT NULL";
+      int n = this._batchSize;
+      switch (step) {
+         case 0: return update(String.format("DELETE FROM MESSAGE WHERE msg_id IN (SELECT msg_id FROM MESSAGE WHERE chat_id IN (%s) LIMIT %d)", deadChats, n));
+         case 1: return reapSenderMessages(String.format("SELECT msg_id, chat_id FROM MESSAGE WHERE sender_login IN (%s) LIMIT %d", tombstones, n));
+         case 2: return update(String.format("DELETE FROM NOTIFICATION WHERE (usr_login, msg_id) IN (SELECT usr_login, msg_id FROM NOTIFICATION WHERE usr_login IN (%s) LIMIT %d)", tombstones, n));
+         case 3: return update(String.format("DELETE FROM CHAT_LIST WHERE (chat_id, member) IN (SELECT chat_id, member FROM CHAT_LIST WHERE chat_id IN (%s) OR member IN (%s) LIMIT %d)", deadChats, tombstones, n));
+         case 4: return update(String.format("DELETE FROM CHAT WHERE chat_id IN (%s LIMIT %d)", deadChats, n));
+         case 5: return update(String.format("DELETE FROM DELETED_USR WHERE login IN (SELECT D.login FROM DELETED_USR D WHERE NOT EXISTS (SELECT 1 FROM MESSAGE M WHERE M.sender_login=D.login) AND NOT EXISTS (SELECT 1 FROM CHAT_LIST C WHERE C.member=D.login) AND NOT EXISTS (SELECT 1 FROM NOTIFICATION N WHERE N.usr_login=D.login) AND NOT EXISTS (SELECT 1 FROM CHAT C WHERE C.init_sender=D.login) LIMIT %d)", n));
+         case 6: return pushTombstones();
+         case 7: return update(String.format("DELETE FROM USER_LIST_CONTAINS WHERE (list_id, list_member) IN (SELECT list_id, list_member FROM USER_LIST_CONTAINS WHERE list_member IN (%s) OR list_id IN (%s) LIMIT %d)", deadUsers, deadLists, n));
+         case 10: return update(String.format("DELETE FROM RATE_LIMIT WHERE (login, operation) IN (SELECT login, operation FROM RATE_LIMIT WHERE refilled_at < now() - interval '%d seconds' LIMIT %d)", IDLE_BUCKET_SECONDS, n));
+         default:
+            String reapable = reapableUsers();
+            if (reapable == null)
+               return 0;
+            // removing the lists cascades to the owning USR row
+            if (step == 8)
+               return update(String.format("DELETE FROM USER_LIST WHERE list_id IN (SELECT block_list FROM USR WHERE login IN (%s) UNION SELECT contact_list FROM USR WHERE login IN (%s))", reapable, reapable));
+            return update(String.format("DELETE FROM USR WHERE login IN (%s)", reapable));
+      }//end switch
+   }//end runStep
+
+   private int update (String sql) throws SQLException {
+      Statement stmt = this._connection.createStatement ();
+      int rows = stmt.executeUpdate (sql);
+      stmt.close ();
+      return rows;
+   }//end update
+
+   private List<String> logins (String query) throws SQLException {
+      List<String> result = new ArrayList<String>();
+      Statement stmt = this._connection.createStatement ();
+      ResultSet rs = stmt.executeQuery (query);
+      while (rs.next())
+         result.add(rs.getString(1).trim());
+      stmt.close ();
+      return result;
+   }//end logins
+
+   /*
+    * Deletes the messages a query selects (msg_id, chat_id) and recounts
+    * the chats they were in, so the unread counts stay right. Both happen
+    * in one transaction.
+    **/
+   private int reapSenderMessages (String query) throws SQLException {
+      StringBuilder msgs = new StringBuilder();
+      Set<String> chats = new HashSet<String>();
+      Statement stmt = this._connection.createStatement ();
+      ResultSet rs = stmt.executeQuery (query);
+      while (rs.next()) {
+         msgs.append(msgs.length() == 0 ? "" : ",").append(rs.getInt(1));
+         chats.add(String.valueOf(rs.getInt(2)));
+      }//end while
+      stmt.close ();
+      if (chats.isEmpty())
+         return 0;
+
+      StringBuilder chatIds = new StringBuilder();
+      for (String chat : chats)
+         chatIds.append(chatIds.length() == 0 ? "" : ",").append(chat);
+      this._connection.setAutoCommit(false);
+      try {
+         int rows = update("DELETE FROM MESSAGE WHERE msg_id IN (" + msgs + ")");
+         for (String sql : recountStatements(chatIds.toString()))
+            update(sql);
+         this._connection.commit();
+         return rows;
+      }finally {
+         this._connection.setAutoCommit(true);
+      }
+   }//end reapSenderMessages
+
+   /*
+    * Writes the tombstones of deleted users that DeleteAccount could not
+    * get onto every chat database
+    **/
+   private int pushTombstones () throws SQLException {
+      int pushed = 0;
+      for (String login : logins(String.format("SELECT login FROM USR WHERE deleted_at IS NOT NULL AND NOT tombstoned LIMIT %d", this._batchSize))) {
+         try {
+            for (String sql : tombstoneStatements(login)) {
+               if (this._shards == null)
+                  update(sql);
+               else
+                  this._shards.broadcastUpdate(sql);
+            }//end for
+         }catch (SQLException e){
+            System.err.println("Reaper: tombstone for " + login + " not pushed yet: " + e.getMessage());
+            continue;
+         }
+         update(String.format("UPDATE USR SET tombstoned = true WHERE login='%s'", quote(login)));
+         pushed++;
+      }//end for
+      return pushed;
+   }//end pushTombstones
+
+   /*
+    * Picks deleted users whose tombstones are gone from every chat database
+    * @return a quoted list for an IN clause, null if there are none
+    **/
+   private String reapableUsers () throws SQLException {
+      List<String> candidates = logins(String.format("SELECT login FROM USR WHERE deleted_at IS NOT NULL AND tombstoned LIMIT %d", this._batchSize));
+      if (candidates.isEmpty())
+         return null;
+      StringBuilder list = new StringBuilder();
+      for (String login : candidates)
+         list.append(list.length() == 0 ? "" : ",").append('\'').append(quote(login)).append('\'');
+      String query = "SELECT login FROM DELETED_USR WHERE login IN (" + list + ")";
+
+      Set<String> live = new HashSet<String>();
+      if (this._shards == null)
+         live.addAll(logins(query));
+      else {
+         try {
+            List<List<String>> rows = this._shards.scatter(query);
+            for (List<String> row : rows.subList(1, rows.size()))
+               live.add(row.get(0).trim());
+         }catch (SQLException e){
+            // cannot tell which shards are done, try again later
+            return null;
+         }
+      }//end else
+
+      StringBuilder reapable = new StringBuilder();
+      for (String login : candidates) {
+         if (!live.contains(login))
+            reapable.append(reapable.length() == 0 ? "" : ",").append('\'').append(quote(login)).append('\'');
+      }//end for
+      return reapable.length() == 0 ? null : reapable.toString();
+   }//end reapableUsers
+
+   private static String quote (String value) {
+      return value.replace("'", "''");
+   }
+
+   /**
+    * The statements that recompute the message counters of chats after
+    * messages were removed: CHAT.msg_count and last_msg_id, and the
+    * read_count of every member.
+    *
+    * @param chatIds comma separated chat ids
+    * @return the statements to run on the database holding the chats
+    */
+   public static String[] recountStatements (String chatIds) {
+      return new String[] {
+         String.format("UPDATE CHAT SET msg_count=(SELECT COUNT(*) FROM MESSAGE M WHERE M.chat_id=CHAT.chat_id), last_msg_id=COALESCE((SELECT MAX(M.msg_id) FROM MESSAGE M WHERE M.chat_id=CHAT.chat_id), 0) WHERE chat_id IN (%s)", chatIds),
+         String.format("UPDATE CHAT_LIST SET read_count=(SELECT COUNT(*) FROM MESSAGE M WHERE M.chat_id=CHAT_LIST.chat_id AND M.msg_id<=CHAT_LIST.last_read_msg_id) WHERE chat_id IN (%s)", chatIds)
+      };
+   }//end recountStatements
+
+   /**
+    * The statements that hide a deleted user on a chat database: the
+    * DELETED_USR tombstone and the soft delete of the chats they started.
+    * Both can be repeated safely.
+    *
+    * @param login the deleted user
+    * @return the statements to run on every chat database
+    */
+   public static String[] tombstoneStatements (String login) {
+      String l = quote(login);
+      return new String[] {
+         String.format("INSERT INTO DELETED_USR (login) SELECT '%s' WHERE NOT EXISTS (SELECT 1 FROM DELETED_USR WHERE login='%s')", l, l),
+         String.format("UPDATE CHAT SET deleted_at = now() WHERE init_sender='%s' AND deleted_at IS NULL", l)
+      };
+   }//end tombstoneStatements
+
+   /**
+    * Refreshes the number of soft-deleted users and chats still waiting
+    */
+   private void countPending () throws SQLException {
+      String users = this._users ? "SELECT COUNT(*) FROM USR WHERE deleted_at IS NOT NULL" : "SELECT COUNT(*) FROM DELETED_USR";
+      String chats = this._chats ? "SELECT COUNT(*) FROM CHAT WHERE deleted_at IS NOT NULL" : "SELECT 0";
+      Statement stmt = this._connection.createStatement ();
+      ResultSet rs = stmt.executeQuery ("SELECT (" + users + "), (" + chats + ")");
+      if (rs.next()) {
+         synchronized (this) {
+            this._pendingUsers = rs.getInt(1);
+            this._pendingChats = rs.getInt(2);
+         }
+      }//end if
+      stmt.close ();
+   }//end countPending
+
+   /**
+    * Prints the reaper progress metrics to standard out.
+    */
+   public synchronized void printStatus () {
+      System.out.println("REAPER STATUS " + this._url + (this._leader ? "" : " (standby)"));
+      System.out.println("-------------");
+      int from = this._chats ? 0 : FIRST_USER_STEP;
+      int to = this._users ? STEPS.length : FIRST_USER_STEP;
+      for (int i = from; i < to; i++)
+         System.out.println(STEPS[i] + "\t" + this._rowsReaped[i]);
+      System.out.println("batches\t" + this._batches);
+      System.out.println("last batch ms\t" + this._lastBatchMillis);
+      System.out.println("pending users\t" + this._pendingUsers);
+      System.out.println("pending chats\t" + this._pendingChats);
+   }//end printStatus
+
+   /**
+    * Creates the reapers for a primary database and its chat shards.
+    *
+    * @param url the JDBC URL of the primary database
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param shards the chat shards, null when chats are on the primary
+    * @return one reaper per database, not started
+    */
+   public static List<Reaper> forDatabases (String url, String user, String passwd, ShardMap shards) {
+      List<Reaper> reapers = new ArrayList<Reaper>();
+      reapers.add(new Reaper(url, user, passwd, true, shards == null, shards));
+      for (int i = 0; shards != null && i < shards.size(); i++)
+         reapers.add(new Reaper(shards.url(i), user, passwd, false, true, null));
+      return reapers;
+   }//end forDatabases
+
+   /**
+    * Runs the reapers without a client, printing their status every minute.
+    *
+    * @param args <dbname> <port> <user> followed by the chat shards, if any
+    */
+   public static void main (String[] args) {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            Reaper.class.getName () +
+            " <dbname> <port> <user> [<shard host:port/dbname> ...]");
+         return;
+      }//end if
+      List<String> shards = new ArrayList<String>();
+      for (int i = 3; i < args.length; i++)
+         shards.add(args[i]);
+      String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+      try{
+         Class.forName ("org.postgresql.Driver");
+         ShardMap shardMap = shards.isEmpty() ? null : new ShardMap(shards, args[2], "");
+         List<Reaper> reapers = forDatabases(url, args[2], "", shardMap);
+         for (Reaper reaper : reapers)
+            reaper.start();
+         while (true) {
+            Thread.sleep(60000);
+            for (Reaper reaper : reapers)
+               reaper.printStatus();
+         }//end while
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }
+   }//end main
+}//end Reaper
@@ -0,0 +1,402 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Maps chat-scoped data (CHAT, CHAT_LIST, MESSAGE, MEDIA_ATTACHMENT,
+ * NOTIFICATION) onto N shard databases. A chat lives on shard
+ * chat_id mod N. Each shard has its own small connection pool so that
+ * user-scoped queries can be sent to every shard in parallel.
+ *
+ * Chat ids stay globally unique without a shared sequence: shard i draws v
+ * from its local chat_chat_id_seq and hands out v * N + i.
+ *
+ * The map is the order of the endpoints given. Each shard records in
+ * SHARD_INFO which shard of how many it was created as, and the map is
+ * refused unless every endpoint matches, since a shard in the wrong place
+ * would hide its chats and hand out ids that collide across clients.
+ *
+ * Tunables (system properties):
+ *    messenger.shard.poolSize   connections per shard (default 2)
+ */
+public class ShardMap {
+
+   /**
+    * Connections to one shard, opened on demand up to the pool size
+    */
+   static class Pool {
+      final String url;
+      final LinkedList<Connection> idle = new LinkedList<Connection>();
+      int opened = 0;
+      long statements = 0;
+
+      Pool (String url) {
+         this.url = url;
+      }
+   }//end Pool
+
+   private final List<Pool> _pools = new ArrayList<Pool>();
+   private final String _user;
+   private final String _passwd;
+   private final int _poolSize;
+   private final ExecutorService _executor;
+   private int _nextShard = 0;
+
+   /**
+    * Creates the shard map and checks every shard is the one expected at
+    * its position.
+    *
+    * @param endpoints host:port/dbname of every shard, in shard order
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @throws java.sql.SQLException when a shard cannot be reached or does
+    *         not match its position
+    */
+   public ShardMap (List<String> endpoints, String user, String passwd) throws SQLException {
+      for (String endpoint : endpoints)
+         this._pools.add(new Pool("jdbc:postgresql://" + endpoint));
+      this._user = user;
+      this._passwd = passwd;
+      this._poolSize = Math.max(1, Integer.getInteger("messenger.shard.poolSize", 2));
+      this._executor = Executors.newFixedThreadPool(endpoints.size(), new ThreadFactory() {
+         public Thread newThread (Runnable r) {
+            Thread t = new Thread(r, "shard-scatter");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      try {
+         checkShards();
+      }catch (SQLException e){
+         close();
+         throw e;
+      }
+   }//end ShardMap
+
+   /*
+    * Compares the SHARD_INFO row of every shard with its position in the map
+    **/
+   private void checkShards () throws SQLException {
+      List<List<String>> rows = scatter("SELECT shard_index, shard_count FROM SHARD_INFO");
+      int n = this._pools.size();
+      if (rows.size() - 1 != n)
+         throw new SQLException("Expected one SHARD_INFO row on each of the " + n + " shards, found " + (rows.size() - 1));
+      // scatter keeps the rows in shard order
+      for (int i = 0; i < n; i++) {
+         List<String> row = rows.get(i + 1);
+         if (Integer.parseInt(row.get(0).trim()) != i || Integer.parseInt(row.get(1).trim()) != n)
+            throw new SQLException(url(i) + " was created as shard " + row.get(0).trim() + " of " + row.get(1).trim() + ", not shard " + i + " of " + n);
+      }//end for
+   }//end checkShards
+
+   /**
+    * @return the number of shards
+    */
+   public int size () {
+      return this._pools.size();
+   }
+
+   /**
+    * @param shard shard index
+    * @return the JDBC URL of that shard
+    */
+   public String url (int shard) {
+      return this._pools.get(shard).url;
+   }
+
+   /**
+    * @param chatId a chat id
+    * @return the index of the shard holding that chat
+    */
+   public int shardOf (int chatId) {
+      int n = this._pools.size();
+      return ((chatId % n) + n) % n;
+   }//end shardOf
+
+   /**
+    * Takes a connection to the given shard, waiting if all of them are busy.
+    * Must be paired with giveBack().
+    *
+    * @param shard shard index
+    * @return an open connection to the shard
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection borrow (int shard) throws SQLException {
+      Pool pool = this._pools.get(shard);
+      synchronized (pool) {
+         while (pool.idle.isEmpty() && pool.opened >= this._poolSize) {
+            try {
+               pool.wait();
+            }catch (InterruptedException e){
+               throw new SQLException("Interrupted while waiting for shard " + shard);
+            }
+         }//end while
+         pool.statements++;
+         if (!pool.idle.isEmpty())
+            return pool.idle.removeFirst();
+         pool.opened++;
+      }
+      try {
+         return DriverManager.getConnection(pool.url, this._user, this._passwd);
+      }catch (SQLException e){
+         synchronized (pool) {
+            pool.opened--;
+            pool.notify();
+         }
+         throw e;
+      }
+   }//end borrow
+
+   /**
+    * Returns a connection obtained from borrow(). A connection whose
+    * statement failed is closed instead of pooled, since it may be dead
+    * (e.g. after a shard restart); the next borrow() opens a fresh one.
+    *
+    * @param shard shard index
+    * @param conn the connection to return
+    * @param failed true if the statement on it threw
+    */
+   public void giveBack (int shard, Connection conn, boolean failed) {
+      Pool pool = this._pools.get(shard);
+      if (failed) {
+         try{
+            conn.close ();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end if
+      synchronized (pool) {
+         if (failed)
+            pool.opened--;
+         else
+            pool.idle.addLast(conn);
+         pool.notify();
+      }
+   }//end giveBack
+
+   /**
+    * Executes an update on the shard holding the given chat.
+    *
+    * @param chatId the chat the statement touches
+    * @param sql the input SQL string
+    * @return the number of rows changed
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (int chatId, String sql) throws SQLException {
+      return executeUpdateOnShard(shardOf(chatId), sql);
+   }//end executeUpdate
+
+   /**
+    * Executes the same update on every shard, one after the other. A shard
+    * that fails does not stop the others.
+    *
+    * @param sql the input SQL string
+    * @return the number of rows changed over all shards
+    * @throws java.sql.SQLException naming every shard the update failed on
+    */
+   public int broadcastUpdate (String sql) throws SQLException {
+      int rows = 0;
+      StringBuilder failed = new StringBuilder();
+      for (int i = 0; i < this._pools.size(); i++) {
+         try {
+            rows += executeUpdateOnShard(i, sql);
+         }catch (SQLException e){
+            failed.append("\n   shard ").append(i).append(": ").append(e.getMessage());
+         }
+      }//end for
+      if (failed.length() > 0)
+         throw new SQLException("Update failed on" + failed);
+      return rows;
+   }//end broadcastUpdate
+
+   private int executeUpdateOnShard (int shard, String sql) throws SQLException {
+      Connection conn = borrow(shard);
+      boolean ok = false;
+      try {
+         Statement stmt = conn.createStatement ();
+         int rows = stmt.executeUpdate (sql);
+         stmt.close ();
+         ok = true;
+         return rows;
+      }finally {
+         giveBack(shard, conn, !ok);
+      }
+   }//end executeUpdateOnShard
+
+   /**
+    * Runs a query on the shard holding the given chat and returns the number
+    * of results, like Messenger.executeQuery().
+    *
+    * @param chatId the chat the query reads
+    * @param query the input query string
+    * @return 1 if the query returned any row, 0 otherwise
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (int chatId, String query) throws SQLException {
+      int shard = shardOf(chatId);
+      Connection conn = borrow(shard);
+      boolean ok = false;
+      try {
+         Statement stmt = conn.createStatement ();
+         ResultSet rs = stmt.executeQuery (query);
+         int rowCount = rs.next() ? 1 : 0;
+         stmt.close ();
+         ok = true;
+         return rowCount;
+      }finally {
+         giveBack(shard, conn, !ok);
+      }
+   }//end executeQuery
+
+   /**
+    * Allocates a new globally unique chat id. Shards are used in turn so new
+    * chats spread evenly.
+    *
+    * @return the new chat id
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int nextChatId () throws SQLException {
+      int shard;
+      synchronized (this) {
+         shard = this._nextShard;
+         this._nextShard = (this._nextShard + 1) % this._pools.size();
+      }
+      Connection conn = borrow(shard);
+      boolean ok = false;
+      try {
+         Statement stmt = conn.createStatement ();
+         ResultSet rs = stmt.executeQuery ("SELECT nextval('chat_chat_id_seq')");
+         rs.next();
+         int local = rs.getInt(1);
+         stmt.close ();
+         ok = true;
+         return local * this._pools.size() + shard;
+      }finally {
+         giveBack(shard, conn, !ok);
+      }
+   }//end nextChatId
+
+   /**
+    * Runs a query on every shard in parallel and concatenates the rows. The
+    * first record of the result holds the column names.
+    *
+    * @param query the input query string
+    * @return the column names followed by all rows, shard by shard
+    * @throws java.sql.SQLException when the query failed on any shard
+    */
+   public List<List<String>> scatter (final String query) throws SQLException {
+      List<Future<List<List<String>>>> parts = new ArrayList<Future<List<List<String>>>>();
+      for (int i = 0; i < this._pools.size(); i++) {
+         final int shard = i;
+         parts.add(this._executor.submit(new Callable<List<List<String>>>() {
+            public List<List<String>> call () throws SQLException {
+               return queryShard(shard, query);
+            }
+         }));
+      }//end for
+
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (Future<List<List<String>>> part : parts) {
+         List<List<String>> rows;
+         try {
+            rows = part.get();
+         }catch (InterruptedException e){
+            throw new SQLException("Interrupted while querying shards");
+         }catch (ExecutionException e){
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException)
+               throw (SQLException) cause;
+            throw new SQLException(cause.toString());
+         }
+         if (result.isEmpty())
+            result.add(rows.get(0));
+         result.addAll(rows.subList(1, rows.size()));
+      }//end for
+      return result;
+   }//end scatter
+
+   private List<List<String>> queryShard (int shard, String query) throws SQLException {
+      Connection conn = borrow(shard);
+      boolean ok = false;
+      try {
+         Statement stmt = conn.createStatement ();
+         ResultSet rs = stmt.executeQuery (query);
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         List<List<String>> result = new ArrayList<List<String>>();
+         List<String> header = new ArrayList<String>();
+         for (int i = 1; i <= numCol; i++)
+            header.add(rsmd.getColumnName(i));
+         result.add(header);
+         while (rs.next()){
+            List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            result.add(record);
+         }//end while
+         stmt.close ();
+         ok = true;
+         return result;
+      }finally {
+         giveBack(shard, conn, !ok);
+      }
+   }//end queryShard
+
+   /**
+    * Prints the shard map and per-shard statement counts to standard out.
+    */
+   public void printStatus () {
+      System.out.println("SHARDS");
+      System.out.println("------");
+      for (int i = 0; i < this._pools.size(); i++) {
+         Pool pool = this._pools.get(i);
+         synchronized (pool) {
+            System.out.println(i + "\t" + pool.url + "\tstatements " + pool.statements + "\tconnections " + pool.opened);
+         }
+      }//end for
+   }//end printStatus
+
+   /**
+    * Stops the scatter threads and closes every pooled connection.
+    */
+   public void close () {
+      this._executor.shutdownNow();
+      for (Pool pool : this._pools) {
+         synchronized (pool) {
+            for (Connection conn : pool.idle) {
+               try{
+                  conn.close ();
+               }catch (SQLException e){
+                  // ignored.
+               }//end try
+            }//end for
+            pool.idle.clear();
+         }
+      }//end for
+   }//end close
+}//end ShardMap
@@ -0,0 +1,9 @@
+#!/bin/bash
+# Creates the chat tables on one shard and loads its part of the data,
+# usage: create_shard_db.sh <port> <dbname> <number of shards> <shard index>
+# The shard index is the position of the shard in the Messenger arguments, from 0.
+# Both are recorded in SHARD_INFO and clients refuse to start on a mismatch.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -p $1 $2 < $DIR/../src/create_shard_tables.sql
+psql -p $1 $2 < $DIR/../src/create_shard_indexes.sql
+psql -p $1 -v shards=$3 -v shard=$4 $2 < $DIR/../src/load_shard_data.sql
@@ -0,0 +1,20 @@
+CREATE INDEX ma ON MEDIA_ATTACHMENT
+USING btree(msg_id);
+
+CREATE INDEX hello on MESSAGE
+USING btree(chat_id);
+
+CREATE INDEX chat_deleted ON CHAT
+USING btree(chat_id) WHERE deleted_at IS NOT NULL;
+
+CREATE INDEX chat_init_sender ON CHAT
+USING btree(init_sender);
+
+CREATE INDEX message_sender ON MESSAGE
+USING btree(sender_login);
+
+CREATE INDEX chat_list_member ON CHAT_LIST
+USING btree(member);
+
+CREATE INDEX message_chat_msg ON MESSAGE
+USING btree(chat_id, msg_id);
@@ -0,0 +1,65 @@
+DROP TABLE NOTIFICATION;
+DROP TABLE MEDIA_ATTACHMENT;
+DROP TABLE MESSAGE;
+DROP TABLE CHAT_LIST;
+DROP TABLE CHAT;
+DROP TABLE DELETED_USR;
+DROP TABLE SHARD_INFO;
+
+-- which shard of how many this database is, checked by every client
+CREATE TABLE SHARD_INFO(
+	one_row boolean DEFAULT true CHECK (one_row),
+	shard_index integer NOT NULL,
+	shard_count integer NOT NULL,
+	PRIMARY KEY(one_row));
+
+CREATE TABLE CHAT(
+	chat_id integer, 
+	chat_type char(50) NOT NULL,
+	init_sender char(50),
+	deleted_at timestamp,
+	last_msg_id integer NOT NULL DEFAULT 0,
+	msg_count integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(chat_id));
+
+-- local counter only, global chat id = nextval * number of shards + shard index
+-- starts past the loaded chats (1..5000) so new ids never reuse their range
+DROP SEQUENCE chat_chat_id_seq;
+CREATE SEQUENCE chat_chat_id_seq START 5001;
+
+CREATE TABLE CHAT_LIST(
+	chat_id integer, 
+	member char(50),
+	last_read_msg_id integer NOT NULL DEFAULT 0,
+	read_count integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(chat_id,member), 
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id)ON DELETE CASCADE);
+
+CREATE TABLE MESSAGE(
+	msg_id serial, 
+	msg_text char(300) NOT NULL, 
+	msg_timestamp timestamp NOT NULL,
+	destr_timestamp timestamp, 
+	sender_login char(50),
+	chat_id integer,
+	PRIMARY KEY(msg_id), 
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id)ON DELETE CASCADE);
+
+CREATE TABLE MEDIA_ATTACHMENT(
+	media_id serial, 
+	media_type char(10), 
+	URL char(256),
+	msg_id integer, 
+	PRIMARY KEY(media_id), 
+	FOREIGN KEY(msg_id) REFERENCES MESSAGE(msg_id)ON DELETE CASCADE);
+
+CREATE TABLE NOTIFICATION(
+	usr_login char(50), 
+	msg_id integer,
+	PRIMARY KEY(usr_login,msg_id),
+	FOREIGN KEY(msg_id) REFERENCES MESSAGE(msg_id)ON DELETE CASCADE);
+
+CREATE TABLE DELETED_USR(
+	login char(50),
+	deleted_at timestamp NOT NULL DEFAULT now(),
+	PRIMARY KEY(login));
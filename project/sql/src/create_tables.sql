@@ -6,6 +6,8 @@ DROP TABLE CHAT;
 DROP TABLE USER_LIST_CONTAINS;
 DROP TABLE USR;
 DROP TABLE USER_LIST;
+DROP TABLE DELETED_USR;
+DROP TABLE RATE_LIMIT;
 
 CREATE TABLE USER_LIST(
 	list_id serial,
@@ -19,6 +21,8 @@ CREATE TABLE USR(
 	status char(140),
 	block_list integer,
 	contact_list integer,
+	deleted_at timestamp,
+	tombstoned boolean NOT NULL DEFAULT false,
 	Primary Key(login),
 	FOREIGN KEY(block_list) REFERENCES USER_LIST(list_id)ON DELETE CASCADE,
 	FOREIGN KEY(contact_list) REFERENCES USER_LIST(list_id)ON DELETE CASCADE);
@@ -34,12 +38,17 @@ CREATE TABLE CHAT(
 	chat_id serial, 
 	chat_type char(50) NOT NULL,
 	init_sender char(50),
+	deleted_at timestamp,
+	last_msg_id integer NOT NULL DEFAULT 0,
+	msg_count integer NOT NULL DEFAULT 0,
 	PRIMARY KEY(chat_id), 
 	FOREIGN KEY(init_sender) REFERENCES USR(login)ON DELETE CASCADE);
 
 CREATE TABLE CHAT_LIST(
 	chat_id integer, 
 	member char(50),
+	last_read_msg_id integer NOT NULL DEFAULT 0,
+	read_count integer NOT NULL DEFAULT 0,
 	PRIMARY KEY(chat_id,member), 
 	FOREIGN KEY(member) REFERENCES USR(login)ON DELETE CASCADE, 
 	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id)ON DELETE CASCADE);
@@ -69,3 +78,15 @@ CREATE TABLE NOTIFICATION(
 	PRIMARY KEY(usr_login,msg_id),
 	FOREIGN KEY(usr_login) REFERENCES USR(login),
 	FOREIGN KEY(msg_id) REFERENCES MESSAGE(msg_id)ON DELETE CASCADE);
+
+CREATE TABLE DELETED_USR(
+	login char(50),
+	deleted_at timestamp NOT NULL DEFAULT now(),
+	PRIMARY KEY(login));
+
+CREATE TABLE RATE_LIMIT(
+	login char(50),
+	operation char(20),
+	tokens float NOT NULL,
+	refilled_at timestamp NOT NULL,
+	PRIMARY KEY(login, operation));
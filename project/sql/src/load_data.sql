@@ -4,6 +4,12 @@ WITH DELIMITER ';';
 ALTER SEQUENCE user_list_list_id_seq RESTART 55906;
 
 COPY USR
+	(login,
+	phoneNum,
+	password,
+	status,
+	block_list,
+	contact_list)
 FROM '/class/classes/rgoo001/Desktop/project/data/usr.csv'
 WITH DELIMITER ';';
 
@@ -12,11 +18,16 @@ FROM '/class/classes/rgoo001/Desktop/project/data/usr_list_contains.csv'
 WITH DELIMITER ';';
 
 COPY CHAT
+	(chat_id,
+	chat_type,
+	init_sender)
 FROM '/class/classes/rgoo001/Desktop/project/data/chat.csv'
 WITH DELIMITER ';';
 ALTER SEQUENCE chat_chat_id_seq RESTART 5001;
 
 COPY CHAT_LIST
+	(chat_id,
+	member)
 FROM '/class/classes/rgoo001/Desktop/project/data/chat_list.csv'
 WITH DELIMITER ';';
 
@@ -30,6 +41,16 @@ FROM '/class/classes/rgoo001/Desktop/project/data/message.csv'
 WITH DELIMITER ';';
 ALTER SEQUENCE message_msg_id_seq RESTART 50000;
 
+UPDATE CHAT
+SET msg_count = (SELECT COUNT(*) FROM MESSAGE M WHERE M.chat_id = CHAT.chat_id),
+	last_msg_id = COALESCE((SELECT MAX(M.msg_id) FROM MESSAGE M WHERE M.chat_id = CHAT.chat_id), 0);
+
+UPDATE CHAT_LIST
+SET last_read_msg_id = C.last_msg_id,
+	read_count = C.msg_count
+FROM CHAT C
+WHERE C.chat_id = CHAT_LIST.chat_id;
+
 COPY MEDIA_ATTACHMENT
 FROM '/class/classes/rgoo001/Desktop/project/data/media_attachment.csv'
 WITH DELIMITER ';';
@@ -0,0 +1,69 @@
+-- Loads this shard's part of the chat data, run with
+--    psql -v shards=<number of shards> -v shard=<index of this shard>
+-- A chat belongs to shard chat_id % shards, its members, messages,
+-- attachments and notifications follow it.
+
+INSERT INTO SHARD_INFO (shard_index, shard_count) VALUES (:shard, :shards);
+
+CREATE TEMP TABLE CHAT_IN(
+	chat_id integer,
+	chat_type char(50),
+	init_sender char(50));
+COPY CHAT_IN
+FROM '/class/classes/rgoo001/Desktop/project/data/chat.csv'
+WITH DELIMITER ';';
+INSERT INTO CHAT (chat_id, chat_type, init_sender)
+SELECT chat_id, chat_type, init_sender FROM CHAT_IN WHERE chat_id % :shards = :shard;
+
+CREATE TEMP TABLE CHAT_LIST_IN(
+	chat_id integer,
+	member char(50));
+COPY CHAT_LIST_IN
+FROM '/class/classes/rgoo001/Desktop/project/data/chat_list.csv'
+WITH DELIMITER ';';
+INSERT INTO CHAT_LIST (chat_id, member)
+SELECT chat_id, member FROM CHAT_LIST_IN WHERE chat_id % :shards = :shard;
+
+CREATE TEMP TABLE MESSAGE_IN(
+	msg_id integer,
+	msg_text char(300),
+	msg_timestamp timestamp,
+	sender_login char(50),
+	chat_id integer);
+COPY MESSAGE_IN
+FROM '/class/classes/rgoo001/Desktop/project/data/message.csv'
+WITH DELIMITER ';';
+INSERT INTO MESSAGE (msg_id, msg_text, msg_timestamp, sender_login, chat_id)
+SELECT msg_id, msg_text, msg_timestamp, sender_login, chat_id FROM MESSAGE_IN WHERE chat_id % :shards = :shard;
+ALTER SEQUENCE message_msg_id_seq RESTART 50000;
+
+CREATE TEMP TABLE MEDIA_ATTACHMENT_IN(
+	media_id integer,
+	media_type char(10),
+	URL char(256),
+	msg_id integer);
+COPY MEDIA_ATTACHMENT_IN
+FROM '/class/classes/rgoo001/Desktop/project/data/media_attachment.csv'
+WITH DELIMITER ';';
+INSERT INTO MEDIA_ATTACHMENT (media_id, media_type, URL, msg_id)
+SELECT A.media_id, A.media_type, A.URL, A.msg_id FROM MEDIA_ATTACHMENT_IN A, MESSAGE M WHERE M.msg_id = A.msg_id;
+ALTER SEQUENCE media_attachment_media_id_seq RESTART 2000;
+
+CREATE TEMP TABLE NOTIFICATION_IN(
+	usr_login char(50),
+	msg_id integer);
+COPY NOTIFICATION_IN
+FROM '/class/classes/rgoo001/Desktop/project/data/notification.csv'
+WITH DELIMITER ';';
+INSERT INTO NOTIFICATION (usr_login, msg_id)
+SELECT N.usr_login, N.msg_id FROM NOTIFICATION_IN N, MESSAGE M WHERE M.msg_id = N.msg_id;
+
+UPDATE CHAT
+SET msg_count = (SELECT COUNT(*) FROM MESSAGE M WHERE M.chat_id = CHAT.chat_id),
+	last_msg_id = COALESCE((SELECT MAX(M.msg_id) FROM MESSAGE M WHERE M.chat_id = CHAT.chat_id), 0);
+
+UPDATE CHAT_LIST
+SET last_read_msg_id = C.last_msg_id,
+	read_count = C.msg_count
+FROM CHAT C
+WHERE C.chat_id = CHAT_LIST.chat_id;